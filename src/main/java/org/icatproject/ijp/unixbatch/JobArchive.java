@@ -0,0 +1,93 @@
+package org.icatproject.ijp.unixbatch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.ws.rs.core.StreamingOutput;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the contents of a job directory as a zip file directly to the response. Nothing is
+ * staged on disk so the first bytes are sent as soon as the first file is opened.
+ */
+public class JobArchive implements StreamingOutput {
+
+	private final static Logger logger = LoggerFactory.getLogger(JobArchive.class);
+
+	private static final int BUFSIZ = 64 * 1024;
+
+	private final Path dir;
+
+	public JobArchive(Path dir) {
+		this.dir = dir;
+	}
+
+	@Override
+	public void write(OutputStream output) throws IOException {
+		final ZipOutputStream zos = new ZipOutputStream(output);
+
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+				if (!d.equals(dir)) {
+					zos.putNextEntry(new ZipEntry(entryName(d) + "/"));
+					zos.closeEntry();
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				if (!attrs.isRegularFile()) {
+					return FileVisitResult.CONTINUE;
+				}
+				InputStream is;
+				try {
+					is = Files.newInputStream(file);
+				} catch (IOException e) {
+					return visitFileFailed(file, e);
+				}
+				try {
+					ZipEntry entry = new ZipEntry(entryName(file));
+					entry.setTime(attrs.lastModifiedTime().toMillis());
+					zos.putNextEntry(entry);
+					byte[] buffer = new byte[BUFSIZ];
+					int n;
+					while ((n = is.read(buffer)) >= 0) {
+						zos.write(buffer, 0, n);
+					}
+					zos.closeEntry();
+				} finally {
+					is.close();
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				logger.warn("Omitting " + file + " from archive " + e.getClass() + " " + e.getMessage());
+				return FileVisitResult.CONTINUE;
+			}
+
+		});
+
+		zos.finish();
+		zos.flush();
+	}
+
+	private String entryName(Path path) {
+		return dir.relativize(path).toString().replace('\\', '/');
+	}
+
+}
@@ -1,29 +1,25 @@
 package org.icatproject.ijp.unixbatch;
 
-import java.io.BufferedWriter;
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Arrays;
-import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Random;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
-import javax.annotation.PostConstruct;
+import javax.ejb.EJB;
 import javax.ejb.Stateless;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
+import javax.ws.rs.core.StreamingOutput;
 import javax.xml.namespace.QName;
 
 import org.icatproject.ICATService;
@@ -36,7 +32,6 @@ import org.icatproject.ijp.batch.exceptions.ForbiddenException;
 import org.icatproject.ijp.batch.exceptions.InternalException;
 import org.icatproject.ijp.batch.exceptions.ParameterException;
 import org.icatproject.ijp.batch.exceptions.SessionException;
-import org.icatproject.utils.CheckedProperties;
 import org.icatproject.utils.ShellCommand;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,55 +42,15 @@ import org.slf4j.LoggerFactory;
 @Stateless
 public class JobManagementBean {
 
-	private String defaultFamily;
-	private Map<String, List<String>> families = new HashMap<>();
+	@EJB
+	private PropertyHandler propertyHandler;
 
-	private Path jobOutputDir;
+	@EJB
+	private JobScheduler jobScheduler;
 
 	private QName qName = new QName("http://icatproject.org", "ICATService");
 
-	@PostConstruct
-	void init() {
-
-		try {
-			CheckedProperties props = new CheckedProperties();
-			props.loadFromFile(Constants.PROPERTIES_FILEPATH);
-
-			String familiesList = props.getString("families.list");
-			for (String mnemonic : familiesList.split("\\s+")) {
-				if (defaultFamily == null) {
-					defaultFamily = mnemonic;
-				}
-				String key = "families." + mnemonic;
-				String[] members = props.getString(key).split("\\s+");
-				families.put(mnemonic, new ArrayList<>(Arrays.asList(members)));
-				logger.debug("Family " + mnemonic + " contains " + families.get(mnemonic));
-			}
-			if (defaultFamily == null) {
-				String msg = "No families defined";
-				logger.error(msg);
-				throw new IllegalStateException(msg);
-			}
-
-			jobOutputDir = props.getPath("jobOutputDir");
-			if (!jobOutputDir.toFile().exists()) {
-				String msg = "jobOutputDir " + jobOutputDir + "does not exist";
-				logger.error(msg);
-				throw new IllegalStateException(msg);
-			}
-			jobOutputDir = jobOutputDir.toAbsolutePath();
-
-			logger.info("Set up unixbatch with default family " + defaultFamily);
-		} catch (Exception e) {
-			String msg = e.getClass() + " reports " + e.getMessage();
-			logger.error(msg);
-			throw new IllegalStateException(msg);
-		}
-
-	}
-
 	private final static Logger logger = LoggerFactory.getLogger(JobManagementBean.class);
-	private final static Random random = new Random();
 
 	@PersistenceContext(unitName = "unixbatch")
 	private EntityManager entityManager;
@@ -105,7 +60,7 @@ public class JobManagementBean {
 		logger.info("getJobOutput called with sessionId:" + sessionId + " jobId:" + jobId + " outputType:" + outputType);
 		UnixBatchJob job = getJob(jobId, sessionId, icatUrl);
 
-		Path file = jobOutputDir.resolve(job.getDirectory()).resolve(
+		Path file = propertyHandler.getJobOutputDir().resolve(job.getDirectory()).resolve(
 				outputType == OutputType.STANDARD_OUTPUT ? "o" : "e");
 
 		if (Files.exists(file)) {
@@ -119,96 +74,69 @@ public class JobManagementBean {
 		}
 	}
 
-	public String submitBatch(String userName, String executable, List<String> parameters, String family)
-			throws ParameterException, InternalException {
+	public StreamingOutput search(String jobId, OutputType outputType, String text, boolean regex, int context,
+			Integer maxMatches, String sessionId, String icatUrl) throws ForbiddenException, InternalException,
+			ParameterException, SessionException {
+		logger.info("search called with sessionId:" + sessionId + " jobId:" + jobId + " outputType:" + outputType
+				+ " text:" + text + " regex:" + regex + " context:" + context + " maxMatches:" + maxMatches);
+		UnixBatchJob job = getJob(jobId, sessionId, icatUrl);
 
-		if (family == null) {
-			family = defaultFamily;
+		if (text == null || text.isEmpty()) {
+			throw new ParameterException("No search text was specified");
 		}
-		List<String> members = families.get(family);
-		if (members == null) {
-			throw new ParameterException("Specified family " + family + " is not recognised");
+		if (context < 0) {
+			throw new ParameterException("context must not be negative");
 		}
-		String owner = members.get(random.nextInt(members.size()));
-
-		Path dir = null;
-		try {
-			dir = Files.createTempDirectory(jobOutputDir, null);
-			ShellCommand sc = new ShellCommand("setfacl", "-m", "user:" + owner + ":rwx", dir.toString());
-			if (sc.getExitValue() != 0) {
-				throw new InternalException(sc.getMessage() + ". Check that user '" + owner + "' exists");
+		context = Math.min(context, propertyHandler.getMaxSearchContext());
+		int limit = propertyHandler.getMaxSearchMatches();
+		if (maxMatches != null) {
+			if (maxMatches <= 0) {
+				throw new ParameterException("maxMatches must be positive");
 			}
-		} catch (IOException e) {
-			throw new InternalException("Unable to submit job via batch " + e.getClass() + " " + e.getMessage());
+			limit = Math.min(maxMatches, limit);
+		}
+		Pattern pattern;
+		try {
+			pattern = Pattern.compile(text, regex ? 0 : Pattern.LITERAL);
+		} catch (PatternSyntaxException e) {
+			throw new ParameterException("Bad regular expression " + e.getMessage());
 		}
 
-		Path batchScriptFile = createScript(parameters, executable, dir);
+		Path file = propertyHandler.getJobOutputDir().resolve(job.getDirectory()).resolve(
+				outputType == OutputType.STANDARD_OUTPUT ? "o" : "e");
 
-		logger.debug("Writing to " + batchScriptFile.toString() + " to run as " + owner);
-		String jobId;
-		try (InputStream is = Files.newInputStream(batchScriptFile)) {
-			ShellCommand sc = new ShellCommand(Paths.get("/home/" + owner), is, "sudo", "-u", owner, "batch");
-			if (sc.getExitValue() != 0) {
-				throw new InternalException("Unable to submit job via batch " + sc.getMessage() + sc.getStdout());
-			}
-			String response = sc.getStderr();
-			
-			// Some versions of the batch command send extra warnings to stderr;
-			// we can't assume that the job id is always the second word.
-			
-			Pattern p = Pattern.compile(".*job (\\d+) .*", Pattern.DOTALL);
-			Matcher m = p.matcher(response);
-			if (m.matches()) {
-				jobId = m.group(1);
-			} else {
-				throw new InternalException("Unable to extract job id from batch output: " + response);
+		if (Files.exists(file)) {
+			try {
+				OutputSearcher searcher = new OutputSearcher(pattern, context, limit,
+						propertyHandler.getMaxSearchSize(), propertyHandler.getMaxSearchSeconds());
+				searcher.scan(file);
+				return searcher;
+			} catch (IOException e) {
+				throw new InternalException(e.getClass() + " " + e.getMessage());
 			}
-
-			UnixBatchJob job = new UnixBatchJob();
-			job.setId(jobId);
-			job.setExecutable(executable);
-			job.setBatchUsername(owner);
-			job.setUsername(userName);
-			job.setSubmitDate(new Date());
-			job.setDirectory(dir.getFileName().toString());
-			entityManager.persist(job);
-			logger.debug("Job " + jobId + " submitted");
-			return jobId;
-		} catch (IOException e) {
-			throw new InternalException("Unable to submit job via batch " + e.getClass() + " " + e.getMessage());
+		} else {
+			throw new ParameterException("No output file of type " + outputType + " available at the moment");
 		}
-
 	}
 
-	private Path createScript(List<String> parameters, String executable, Path dir) throws InternalException {
-		Path batchScriptFile = null;
-		try {
-			batchScriptFile = Files.createTempFile(null, null);
-		} catch (IOException e) {
-			throw new InternalException("Unable to create a temporary file: " + e.getMessage());
-		}
+	public StreamingOutput getJobArchive(String jobId, String sessionId, String icatUrl) throws ForbiddenException,
+			ParameterException, SessionException {
+		logger.info("getJobArchive called with sessionId:" + sessionId + " jobId:" + jobId);
+		UnixBatchJob job = getJob(jobId, sessionId, icatUrl);
 
-		String of = dir.resolve("o").toString();
-		String ef = dir.resolve("e").toString();
-		try (BufferedWriter bw = Files.newBufferedWriter(batchScriptFile, Charset.defaultCharset())) {
-			writeln(bw, "#!/bin/sh");
-			writeln(bw, "rm -rf *");
-			writeln(bw, "echo $(date) - " + executable + " starting > " + of + " 2> " + ef);
-			String line = executable + " " + JobManagementBean.escaped(parameters) + " >> " + of + " 2>> " + ef;
-			writeln(bw, line);
-			writeln(bw, "rc=$?");
-			writeln(bw, "echo $(date) - " + executable + " ending with code $rc >> " + of + " 2>> " + ef);
-			writeln(bw, "rm -rf *");
-		} catch (IOException e) {
-			throw new InternalException("Exception creating batch script: " + e.getMessage());
+		Path dir = propertyHandler.getJobOutputDir().resolve(job.getDirectory());
+		if (Files.isDirectory(dir)) {
+			return new JobArchive(dir);
+		} else {
+			throw new ParameterException("No output of job " + jobId + " available at the moment");
 		}
-		return batchScriptFile;
 	}
 
-	private void writeln(BufferedWriter bw, String string) throws IOException {
-		bw.write(string);
-		bw.newLine();
-		logger.debug("Script line: " + string);
+	public String submitBatch(String userName, String executable, List<String> parameters, String family,
+			boolean workdir, List<String> parents, boolean afterAny, boolean dedup) throws ParameterException,
+			InternalException {
+		return jobScheduler.submit(userName, executable, JobManagementBean.escaped(parameters), family, workdir,
+				parents, afterAny, dedup);
 	}
 
 	private static String sq = "\"'\"";
@@ -271,6 +199,13 @@ public class JobManagementBean {
 			logger.debug("job " + jobId + " has been cancelled");
 			return BatchJson.getStatus(JobStatus.Cancelled);
 		}
+		if (job.isHeld()) {
+			logger.debug("job " + jobId + " is held");
+			return BatchJson.getStatus(JobStatus.Queued);
+		}
+		if (job.isCompleted()) {
+			return BatchJson.getStatus(JobStatus.Completed);
+		}
 		String owner = job.getBatchUsername();
 		logger.debug("job " + jobId + " is being run by " + owner);
 		ShellCommand sc = new ShellCommand(Paths.get("/home/" + owner), null, "sudo", "-u", owner, "atq");
@@ -282,7 +217,7 @@ public class JobManagementBean {
 		for (String atq : sc.getStdout().trim().split("[\\n\\r]+")) {
 			if (!atq.isEmpty()) {
 				String[] bits = atq.split("\\s+");
-				if (bits[0].equals(jobId)) {
+				if (bits[0].equals(job.getBatchId())) {
 					if (bits[3].equals("=")) {
 						status = JobStatus.Executing;
 					} else {
@@ -312,41 +247,66 @@ public class JobManagementBean {
 			ParameterException, SessionException {
 		logger.info("delete called with sessionId:" + sessionId + " jobId:" + jobId);
 		UnixBatchJob job = getJob(jobId, sessionId, icatUrl);
-		String owner = job.getBatchUsername();
-		logger.debug("job " + jobId + " is being run by " + owner);
-		ShellCommand sc = new ShellCommand(Paths.get("/home/" + owner), null, "sudo", "-u", owner, "atq");
-		if (sc.isError()) {
-			throw new InternalException(sc.getMessage());
+		if (job.isHeld()) {
+			throw new ParameterException("Job " + jobId + " is Queued");
 		}
-		String status = "Completed";
-		for (String atq : sc.getStdout().trim().split("[\\n\\r]+")) {
-			if (!atq.isEmpty()) {
-				String[] bits = atq.split("\\s+");
-				if (bits[0].equals(jobId)) {
-					if (bits[3].equals("=")) {
-						status = "Executing";
-					} else {
-						status = "Queued";
+		for (UnixBatchJob child : entityManager.createNamedQuery(UnixBatchJob.WAITING_BY_USERNAME, UnixBatchJob.class)
+				.setParameter("username", job.getUsername()).getResultList()) {
+			if (Arrays.asList(child.getParents().split(" ")).contains(jobId)) {
+				throw new ParameterException("Job " + jobId + " may not be deleted as job " + child.getId()
+						+ " is waiting for it");
+			}
+		}
+		String owner = job.getBatchUsername();
+		if (owner != null && !job.isCancelled() && !job.isCompleted()) {
+			logger.debug("job " + jobId + " is being run by " + owner);
+			ShellCommand sc = new ShellCommand(Paths.get("/home/" + owner), null, "sudo", "-u", owner, "atq");
+			if (sc.isError()) {
+				throw new InternalException(sc.getMessage());
+			}
+			String status = "Completed";
+			for (String atq : sc.getStdout().trim().split("[\\n\\r]+")) {
+				if (!atq.isEmpty()) {
+					String[] bits = atq.split("\\s+");
+					if (bits[0].equals(job.getBatchId())) {
+						if (bits[3].equals("=")) {
+							status = "Executing";
+						} else {
+							status = "Queued";
+						}
+						break;
 					}
-					break;
 				}
 			}
-		}
-		logger.debug("Status is " + status);
-		if (!status.equals("Completed")) {
-			throw new ParameterException("Job " + jobId + " is " + status);
+			logger.debug("Status is " + status);
+			if (!status.equals("Completed")) {
+				throw new ParameterException("Job " + jobId + " is " + status);
+			}
 		}
 
 		entityManager.remove(job);
 
 		try {
-			Path dir = jobOutputDir.resolve(job.getDirectory());
-			File[] files = dir.toFile().listFiles();
-			if (files != null) {
-				for (File f : dir.toFile().listFiles()) {
-					Files.delete(f.toPath());
-				}
-				Files.delete(dir);
+			Path dir = propertyHandler.getJobOutputDir().resolve(job.getDirectory());
+			if (Files.exists(dir)) {
+				Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+						Files.delete(file);
+						return FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+						if (e != null) {
+							throw e;
+						}
+						Files.delete(d);
+						return FileVisitResult.CONTINUE;
+					}
+
+				});
 				logger.debug("Directory " + dir + " has been deleted");
 			}
 		} catch (IOException e) {
@@ -356,39 +316,8 @@ public class JobManagementBean {
 
 	public void cancel(String jobId, String sessionId, String icatUrl) throws ParameterException, ForbiddenException, SessionException {
 		logger.info("cancel called with sessionId:" + sessionId + " jobId:" + jobId);
-		UnixBatchJob job = getJob(jobId, sessionId, icatUrl);
-		String owner = job.getBatchUsername();
-		logger.debug("job " + jobId + " is being handled by " + owner);
-		ShellCommand sc = new ShellCommand(Paths.get("/home/" + owner), null, "sudo", "-u", owner, "atrm", jobId);
-		if (sc.isError()) {
-			if (sc.getStderr().startsWith("Warning")) { // Job was running
-				killJobsFor(owner);
-			} else {
-				throw new ParameterException(sc.getStderr());
-			}
-		}
-		job.setCancelled(true);
-	}
-
-	private void killJobsFor(String owner) {
-		ShellCommand sc = new ShellCommand("ps", "-U", owner, "-o", "pid=");
-		if (!sc.isError()) {
-			List<String> cmdbits = new ArrayList<>();
-			cmdbits.add("sudo");
-			cmdbits.add("-u");
-			cmdbits.add(owner);
-			cmdbits.add("/usr/bin/kill");
-			cmdbits.add("-9");
-			for (String pid : sc.getStdout().split("[\\r\\n]+")) {
-				cmdbits.add(pid);
-			}
-			logger.debug("Executing " + cmdbits);
-			sc = new ShellCommand(cmdbits);
-			if (sc.isError()) {
-				logger.debug(sc.getStderr());
-			}
-		}
-
+		getJob(jobId, sessionId, icatUrl);
+		jobScheduler.cancel(jobId);
 	}
 
 	private void checkCredentials(String sessionId, String icatUrl) throws ParameterException {
@@ -401,14 +330,17 @@ public class JobManagementBean {
 	}
 
 	public String submit(String executable, List<String> parameters, String family, boolean interactive,
-			String sessionId, String icatUrl) throws InternalException, ParameterException, SessionException {
+			boolean workdir, List<String> parents, boolean afterAny, boolean dedup, String sessionId,
+			String icatUrl) throws InternalException, ParameterException, SessionException {
 		logger.info("submit called with sessionId:" + sessionId + " executable:" + executable + " parameters:"
-				+ parameters + " family:" + family + " :" + " interactive:" + interactive);
+				+ parameters + " family:" + family + " :" + " interactive:" + interactive + " workdir:" + workdir
+				+ " parents:" + parents + " afterAny:" + afterAny + " dedup:" + dedup);
 		String userName = getUserName(sessionId, icatUrl);
 		if (interactive) {
 			throw new ParameterException("Interactive jobs are not currently supported by UnixBatch");
 		} else {
-			return BatchJson.submitBatch(submitBatch(userName, executable, parameters, family));
+			return BatchJson.submitBatch(submitBatch(userName, executable, parameters, family, workdir, parents,
+					afterAny, dedup));
 		}
 	}
 
@@ -15,6 +15,7 @@ import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
 
 import org.icatproject.ijp.batch.exceptions.ForbiddenException;
 import org.icatproject.ijp.batch.exceptions.InternalException;
@@ -29,6 +30,30 @@ public class JobManager {
 	@EJB
 	private JobManagementBean jobManagementBean;
 
+	@GET
+	@Path("archive/{jobId}")
+	@Produces("application/zip")
+	/**
+	 * Stream a zip file holding everything in the job's output directory: the standard output 
+	 * as "o", the standard error as "e" and, for jobs submitted with workdir, all files left in 
+	 * "work". The zip is built as it is sent. If the job has not finished running the contents 
+	 * will be incomplete.
+	 * 
+	 * @param jobId as returned by the call to submit
+	 * @param sessionId the icat session id of the submitter
+	 * @param icatUrl the url of the icat that issued the sessionId
+	 * 
+	 * @return stream
+	 * 
+	 * @throws SessionException
+	 * @throws ForbiddenException
+	 * @throws ParameterException
+	 */
+	public StreamingOutput getArchive(@PathParam("jobId") String jobId, @QueryParam("sessionId") String sessionId,
+			@QueryParam("icatUrl") String icatUrl) throws SessionException, ForbiddenException, ParameterException {
+		return jobManagementBean.getJobArchive(jobId, sessionId, icatUrl);
+	}
+
 	@POST
 	@Path("cancel/{jobId}")
 	@Consumes(MediaType.APPLICATION_FORM_URLENCODED)
@@ -169,6 +194,47 @@ public class JobManager {
 		return jobManagementBean.list(sessionId, icatUrl);
 	}
 
+	@GET
+	@Path("search/{jobId}")
+	@Produces(MediaType.APPLICATION_JSON)
+	/**
+	 * Search the standard output or standard error of a job on the server and return the 
+	 * matching lines. If the job has not finished running the search only covers the output so far.
+	 * 
+	 * @param jobId as returned by the call to submit
+	 * @param text the literal text or regular expression to look for
+	 * @param regex true if text is a regular expression. By default it is literal text.
+	 * @param error true to search standard error rather than standard output
+	 * @param context the number of lines to return before and after each matching line. Defaults to 0.
+	 *        It may not exceed the limit set by the server.
+	 * @param maxMatches the number of matching lines after which to stop. It may not exceed the 
+	 *        limit set by the server which is also used if it is omitted.
+	 * @param sessionId the icat session id of the submitter
+	 * @param icatUrl the url of the icat that issued the sessionId
+	 * 
+	 * @return json with a "matches" array holding the "offset" in bytes and the "line" of each 
+	 *         match with its "before" and "after" context lines, and a boolean "truncated" which 
+	 *         is true if more matching lines may exist. The search stops once maxMatches lines and
+	 *         their context have been found or the text to return reaches a limit set by the
+	 *         server. Only the first 64 KiB of a line is searched and the first 4096 characters
+	 *         returned. A search which runs for longer than the server allows is abandoned with
+	 *         a ParameterException.
+	 * 
+	 * @throws SessionException
+	 * @throws ForbiddenException
+	 * @throws InternalException
+	 * @throws ParameterException
+	 */
+	public StreamingOutput search(@PathParam("jobId") String jobId, @QueryParam("text") String text,
+			@QueryParam("regex") Boolean regex, @QueryParam("error") Boolean error,
+			@QueryParam("context") Integer context, @QueryParam("maxMatches") Integer maxMatches,
+			@QueryParam("sessionId") String sessionId, @QueryParam("icatUrl") String icatUrl)
+			throws SessionException, ForbiddenException, InternalException, ParameterException {
+		return jobManagementBean.search(jobId, error != null && error ? OutputType.ERROR_OUTPUT
+				: OutputType.STANDARD_OUTPUT, text, regex != null && regex, context == null ? 0 : context,
+				maxMatches, sessionId, icatUrl);
+	}
+
 	@GET
 	@Path("status/{jobId}")
 	@Produces(MediaType.APPLICATION_JSON)
@@ -203,6 +269,17 @@ public class JobManager {
 	 * @param parameters the executables parameters
 	 * @param interactive true if interactive else false
 	 * @param family the name of the family. A family identifies a group of user accounts. If omitted the default family can be used.	 
+	 * @param workdir true to run the job in its own working directory under the job output directory. 
+	 *        Files it leaves there may then be downloaded with archive. Otherwise the job runs in the 
+	 *        home directory of the pool account which is emptied before and after the job.
+	 * @param parents the ids of jobs which must complete before this one is passed to batch. The 
+	 *        job is cancelled if any parent is cancelled or, unless afterAny is set, fails.
+	 * @param afterAny true to run the job once its parents have completed whether or not they 
+	 *        succeeded. By default each parent must exit with code 0.
+	 * @param dedup true to return the id of an identical job, with the same executable, parameters, 
+	 *        family and workdir, submitted recently by the same user if it is queued, executing or 
+	 *        has completed successfully rather than submitting a new one. It is ignored for jobs 
+	 *        with parents.
 	 * @param sessionId the icat session id of the submitter
 	 * @param icatUrl the url of the icat that issued the sessionId
 	 *  
@@ -214,9 +291,12 @@ public class JobManager {
 	 */
 	public String submit(@FormParam("executable") String executable, @FormParam("parameter") List<String> parameters,
 			@FormParam("interactive") Boolean interactive, @FormParam("family") String family,
+			@FormParam("workdir") Boolean workdir, @FormParam("parent") List<String> parents,
+			@FormParam("afterAny") Boolean afterAny, @FormParam("dedup") Boolean dedup,
 			@FormParam("sessionId") String sessionId, @FormParam("icatUrl") String icatUrl) throws InternalException,
 			SessionException, ParameterException {
-		return jobManagementBean.submit(executable, parameters, family, interactive != null && interactive, sessionId,
+		return jobManagementBean.submit(executable, parameters, family, interactive != null && interactive,
+				workdir != null && workdir, parents, afterAny != null && afterAny, dedup != null && dedup, sessionId,
 				icatUrl);
 	}
 
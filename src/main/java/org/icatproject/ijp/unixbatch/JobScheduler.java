@@ -0,0 +1,568 @@
+package org.icatproject.ijp.unixbatch;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Resource;
+import javax.ejb.EJB;
+import javax.ejb.EJBException;
+import javax.ejb.Schedule;
+import javax.ejb.SessionContext;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.icatproject.ijp.batch.exceptions.InternalException;
+import org.icatproject.ijp.batch.exceptions.ParameterException;
+import org.icatproject.utils.ShellCommand;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Passes jobs to batch. When fair share limits are configured a job which would take its user
+ * over the limits is held here and released later, taking one job from each user in turn. A job
+ * with parents is held until they have completed.
+ *
+ * Each business method runs in its own transaction so that its work is committed before the lock
+ * on this bean is released. Otherwise a submission could count a user's jobs before an earlier
+ * submission had been committed and so exceed the fair share limits.
+ */
+@Singleton
+@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+public class JobScheduler {
+
+	private final static Logger logger = LoggerFactory.getLogger(JobScheduler.class);
+	private final static Random random = new Random();
+	private final static String WORKDIR = "work";
+
+	@EJB
+	private PropertyHandler propertyHandler;
+
+	@PersistenceContext(unitName = "unixbatch")
+	private EntityManager entityManager;
+
+	@Resource
+	private SessionContext sessionContext;
+
+	private final Map<String, TokenBucket> buckets = new HashMap<>();
+
+	private final RoundRobin roundRobin = new RoundRobin();
+
+	/**
+	 * Submit a job to batch immediately if it has no parents and the user's fair share allows it,
+	 * otherwise hold it. If dedup is set and the user submitted an identical job without parents
+	 * recently which has not been cancelled or failed then the id of that job is returned instead.
+	 *
+	 * @return the job id
+	 */
+	public String submit(String userName, String executable, String parameters, String family, boolean workdir,
+			List<String> parents, boolean afterAny, boolean dedup) throws ParameterException, InternalException {
+		PropertyHandler.Families families = propertyHandler.getFamilies();
+		if (family == null) {
+			family = families.getDefaultFamily();
+		}
+		if (families.getMembers(family) == null) {
+			throw new ParameterException("Specified family " + family + " is not recognised");
+		}
+		StringBuilder sb = new StringBuilder();
+		for (String parentId : parents) {
+			UnixBatchJob parent = entityManager.find(UnixBatchJob.class, parentId);
+			if (parent == null || !parent.getUsername().equals(userName)) {
+				throw new ParameterException("Parent job " + parentId + " does not belong to you");
+			}
+			if (parent.getFamily() == null) {
+				throw new ParameterException("Parent job " + parentId
+						+ " was submitted before dependencies were supported so its outcome cannot be known");
+			}
+			if (sb.length() != 0) {
+				sb.append(" ");
+			}
+			sb.append(parentId);
+		}
+
+		String dedupKey = null;
+		if (sb.length() == 0) {
+			dedupKey = dedupKey(executable, parameters, family, workdir);
+			if (dedup) {
+				Date since = new Date(System.currentTimeMillis() - propertyHandler.getDedupMinutes() * 60000L);
+				for (UnixBatchJob duplicate : entityManager
+						.createNamedQuery(UnixBatchJob.DUPLICATE, UnixBatchJob.class)
+						.setParameter("dedupKey", dedupKey).setParameter("username", userName)
+						.setParameter("since", since).getResultList()) {
+					/*
+					 * A job may have finished since the last tick so check its exit code as that
+					 * will not yet have been recorded
+					 */
+					if (!duplicate.isCompleted()) {
+						Integer rc = readExitCode(duplicate);
+						if (rc != null && rc != 0) {
+							continue;
+						}
+					}
+					logger.debug("Returning job " + duplicate.getId() + " as it is identical to the submission");
+					return duplicate.getId();
+				}
+			}
+		}
+
+		UnixBatchJob job = new UnixBatchJob();
+		job.setExecutable(executable);
+		job.setParameters(parameters);
+		job.setFamily(family);
+		job.setWorkdir(workdir);
+		job.setUsername(userName);
+		job.setSubmitDate(new Date());
+		job.setDedupKey(dedupKey);
+		try {
+			Path dir = Files.createTempDirectory(propertyHandler.getJobOutputDir(), null);
+			job.setDirectory(dir.getFileName().toString());
+		} catch (IOException e) {
+			throw new InternalException("Unable to submit job via batch " + e.getClass() + " " + e.getMessage());
+		}
+
+		if (sb.length() != 0) {
+			job.setId(UUID.randomUUID().toString());
+			job.setParents(sb.toString());
+			job.setAfterAny(afterAny);
+			job.setHeld(true);
+			job.setWaiting(true);
+			logger.debug("Job " + job.getId() + " held until " + job.getParents() + " have completed");
+		} else if (mayLaunch(userName)) {
+			launch(job);
+			job.setId(job.getBatchId());
+			logger.debug("Job " + job.getId() + " submitted");
+		} else {
+			job.setId(UUID.randomUUID().toString());
+			job.setHeld(true);
+			logger.debug("Job " + job.getId() + " held to keep " + userName + " within fair share");
+		}
+		entityManager.persist(job);
+		return job.getId();
+	}
+
+	private String dedupKey(String executable, String parameters, String family, boolean workdir)
+			throws InternalException {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			for (String s : new String[] { executable, parameters, family, Boolean.toString(workdir) }) {
+				digest.update(String.valueOf(s).getBytes(StandardCharsets.UTF_8));
+				digest.update((byte) 0);
+			}
+			StringBuilder sb = new StringBuilder();
+			for (byte b : digest.digest()) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new InternalException(e.getClass() + " " + e.getMessage());
+		}
+	}
+
+	private boolean mayLaunch(String userName) {
+		int maxJobs = propertyHandler.getMaxJobsPerUser();
+		if (maxJobs == 0 && propertyHandler.getSubmissionsPerMinute() == 0) {
+			return true;
+		}
+		if (entityManager.createNamedQuery(UnixBatchJob.COUNT_HELD_BY_USERNAME, Long.class)
+				.setParameter("username", userName).getSingleResult() != 0) {
+			return false;
+		}
+		if (maxJobs != 0
+				&& entityManager.createNamedQuery(UnixBatchJob.COUNT_ACTIVE_BY_USERNAME, Long.class)
+						.setParameter("username", userName).getSingleResult() >= maxJobs) {
+			return false;
+		}
+		return takeToken(userName);
+	}
+
+	private boolean takeToken(String userName) {
+		if (propertyHandler.getSubmissionsPerMinute() == 0) {
+			return true;
+		}
+		TokenBucket bucket = buckets.get(userName);
+		if (bucket == null) {
+			bucket = new TokenBucket(propertyHandler.getSubmissionsPerMinute(), propertyHandler.getSubmissionBurst());
+			buckets.put(userName, bucket);
+		}
+		return bucket.tryTake();
+	}
+
+	/**
+	 * Cancel a job. This is done here so that a held job cannot be released while it is being
+	 * cancelled.
+	 */
+	public void cancel(String jobId) throws ParameterException {
+		UnixBatchJob job = entityManager.find(UnixBatchJob.class, jobId);
+		if (job.isHeld()) {
+			logger.debug("job " + jobId + " is held so need not be removed from at");
+			job.setHeld(false);
+			job.setWaiting(false);
+			job.setCancelled(true);
+			return;
+		}
+		String owner = job.getBatchUsername();
+		if (owner == null) {
+			throw new ParameterException("Job " + jobId + " was never passed to batch");
+		}
+		logger.debug("job " + jobId + " is being handled by " + owner);
+		ShellCommand sc = new ShellCommand(Paths.get("/home/" + owner), null, "sudo", "-u", owner, "atrm",
+				job.getBatchId());
+		if (sc.isError()) {
+			if (sc.getStderr().startsWith("Warning")) { // Job was running
+				killJobsFor(owner);
+			} else {
+				throw new ParameterException(sc.getStderr());
+			}
+		}
+		job.setCancelled(true);
+	}
+
+	private void killJobsFor(String owner) {
+		ShellCommand sc = new ShellCommand("ps", "-U", owner, "-o", "pid=");
+		if (!sc.isError()) {
+			List<String> cmdbits = new ArrayList<>();
+			cmdbits.add("sudo");
+			cmdbits.add("-u");
+			cmdbits.add(owner);
+			cmdbits.add("/usr/bin/kill");
+			cmdbits.add("-9");
+			for (String pid : sc.getStdout().split("[\\r\\n]+")) {
+				cmdbits.add(pid);
+			}
+			logger.debug("Executing " + cmdbits);
+			sc = new ShellCommand(cmdbits);
+			if (sc.isError()) {
+				logger.debug(sc.getStderr());
+			}
+		}
+
+	}
+
+	/**
+	 * Note which jobs have left at, settle jobs waiting for their parents and then release held
+	 * jobs as far as the fair share limits allow. Each step is committed separately through the
+	 * business methods so that a job is recorded as passed to batch as soon as it has been and
+	 * cannot be passed again should something later in the tick fail.
+	 */
+	@Schedule(hour = "*", minute = "*", second = "*/10", persistent = false)
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	void schedule() {
+		JobScheduler self = sessionContext.getBusinessObject(JobScheduler.class);
+		final Map<String, Integer> active = self.reconcile();
+
+		List<UnixBatchJob> held = entityManager.createNamedQuery(UnixBatchJob.HELD, UnixBatchJob.class)
+				.getResultList();
+		Map<String, Deque<UnixBatchJob>> queues = new HashMap<>();
+		for (UnixBatchJob job : held) {
+			Deque<UnixBatchJob> queue = queues.get(job.getUsername());
+			if (queue == null) {
+				queue = new ArrayDeque<>();
+				queues.put(job.getUsername(), queue);
+			}
+			queue.add(job);
+		}
+
+		final int maxJobs = propertyHandler.getMaxJobsPerUser();
+		RoundRobin.Gate gate = new RoundRobin.Gate() {
+
+			@Override
+			public boolean mayRelease(String userName) {
+				Integer n = active.get(userName);
+				int count = n == null ? 0 : n;
+				if ((maxJobs == 0 || count < maxJobs) && takeToken(userName)) {
+					active.put(userName, count + 1);
+					return true;
+				}
+				return false;
+			}
+		};
+		for (UnixBatchJob job : roundRobin.choose(queues, gate, propertyHandler.getMaxReleases())) {
+			try {
+				self.release(job.getId());
+			} catch (EJBException e) {
+				logger.error("Unable to release job " + job.getId() + " " + e.getMessage());
+			}
+		}
+
+		Iterator<TokenBucket> iter = buckets.values().iterator();
+		while (iter.hasNext()) {
+			if (iter.next().isFull()) {
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * Note which jobs have left at and settle jobs waiting for their parents. For use by schedule
+	 * only.
+	 *
+	 * @return the number of jobs that each user still has in at
+	 */
+	public Map<String, Integer> reconcile() {
+		Map<String, Integer> active = updateActive();
+		updateWaiting();
+		return active;
+	}
+
+	/*
+	 * Mark jobs which are no longer known to at as completed and return the number of jobs that
+	 * each user still has in at. The jobs are read before at is queried so that a job committed
+	 * after the query cannot be wrongly marked as completed.
+	 */
+	private Map<String, Integer> updateActive() {
+		Map<String, Integer> active = new HashMap<>();
+		Map<String, Set<String>> atJobsByOwner = new HashMap<>();
+		for (UnixBatchJob job : entityManager.createNamedQuery(UnixBatchJob.ACTIVE, UnixBatchJob.class)
+				.getResultList()) {
+			String owner = job.getBatchUsername();
+			if (!atJobsByOwner.containsKey(owner)) {
+				atJobsByOwner.put(owner, getAtJobs(owner));
+			}
+			Set<String> atJobs = atJobsByOwner.get(owner);
+			if (atJobs != null && !atJobs.contains(job.getBatchId())) {
+				job.setCompleted(true);
+				job.setExitCode(readExitCode(job));
+				logger.debug("Job " + job.getId() + " has completed with exit code " + job.getExitCode());
+			} else {
+				Integer n = active.get(job.getUsername());
+				active.put(job.getUsername(), n == null ? 1 : n + 1);
+			}
+		}
+		return active;
+	}
+
+	/*
+	 * Return the exit code written by the batch script or null if there is none, as happens when
+	 * the job is killed.
+	 */
+	private Integer readExitCode(UnixBatchJob job) {
+		Path rcf = propertyHandler.getJobOutputDir().resolve(job.getDirectory()).resolve("rc");
+		try {
+			return Integer.valueOf(new String(Files.readAllBytes(rcf)).trim());
+		} catch (IOException | NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/*
+	 * Release jobs whose parents have all completed, and cancel those that can never run because
+	 * a parent has been cancelled or, unless afterAny is set, has failed. A parent may not be
+	 * deleted while jobs wait for it, but should one be missing it counts as failed as its outcome
+	 * is not known. This repeats until nothing changes so that a whole chain is cancelled at once.
+	 */
+	private void updateWaiting() {
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (UnixBatchJob job : entityManager.createNamedQuery(UnixBatchJob.WAITING, UnixBatchJob.class)
+					.getResultList()) {
+				boolean ready = true;
+				String reason = null;
+				for (String parentId : job.getParents().split(" ")) {
+					UnixBatchJob parent = entityManager.find(UnixBatchJob.class, parentId);
+					if (parent == null) {
+						if (!job.isAfterAny()) {
+							reason = "parent job " + parentId + " has been deleted";
+						}
+					} else if (parent.isCancelled()) {
+						reason = "parent job " + parentId + " was cancelled";
+					} else if (!parent.isCompleted()) {
+						ready = false;
+					} else if (!job.isAfterAny() && !Integer.valueOf(0).equals(parent.getExitCode())) {
+						reason = "parent job " + parentId + " failed";
+					}
+					if (reason != null) {
+						break;
+					}
+				}
+				if (reason != null) {
+					job.setWaiting(false);
+					job.setHeld(false);
+					job.setCancelled(true);
+					logger.debug("Job " + job.getId() + " cancelled as " + reason);
+					changed = true;
+				} else if (ready) {
+					job.setWaiting(false);
+					logger.debug("Job " + job.getId() + " may now be released");
+				}
+			}
+			entityManager.flush();
+		}
+	}
+
+	/*
+	 * Return the ids of the jobs which owner has in at or null if atq fails
+	 */
+	private Set<String> getAtJobs(String owner) {
+		ShellCommand sc = new ShellCommand(Paths.get("/home/" + owner), null, "sudo", "-u", owner, "atq");
+		if (sc.isError()) {
+			logger.error("Unable to list jobs of " + owner + " " + sc.getMessage());
+			return null;
+		}
+		Set<String> atJobs = new HashSet<>();
+		for (String atq : sc.getStdout().trim().split("[\\n\\r]+")) {
+			if (!atq.isEmpty()) {
+				atJobs.add(atq.split("\\s+")[0]);
+			}
+		}
+		return atJobs;
+	}
+
+	/**
+	 * Pass a held job to batch. For use by schedule only. The job is looked up again as it may
+	 * have been cancelled since it was chosen.
+	 */
+	public void release(String jobId) {
+		UnixBatchJob job = entityManager.find(UnixBatchJob.class, jobId);
+		if (job == null || !job.isHeld() || job.isWaiting()) {
+			return;
+		}
+		job.setHeld(false);
+		try {
+			launch(job);
+			logger.debug("Job " + job.getId() + " released as batch job " + job.getBatchId());
+		} catch (InternalException | ParameterException e) {
+			logger.error("Unable to release job " + job.getId() + " " + e.getMessage());
+			failed(job, e.getMessage());
+		}
+	}
+
+	/*
+	 * Record a job which could not be passed to batch as completed with the reason in its
+	 * standard error.
+	 */
+	private void failed(UnixBatchJob job, String msg) {
+		job.setCompleted(true);
+		Path ef = propertyHandler.getJobOutputDir().resolve(job.getDirectory()).resolve("e");
+		try {
+			Files.write(ef, (msg + "\n").getBytes(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		} catch (IOException e) {
+			logger.error("Unable to write to " + ef + " " + e.getClass() + " " + e.getMessage());
+		}
+	}
+
+	/*
+	 * Pass the job to batch as a randomly chosen member of its family and record the owner and
+	 * the id assigned by at.
+	 */
+	private void launch(UnixBatchJob job) throws ParameterException, InternalException {
+		List<String> members = propertyHandler.getFamilies().getMembers(job.getFamily());
+		if (members == null) {
+			throw new ParameterException("Specified family " + job.getFamily() + " is not recognised");
+		}
+		String owner = members.get(random.nextInt(members.size()));
+
+		Path dir = propertyHandler.getJobOutputDir().resolve(job.getDirectory());
+		try {
+			ShellCommand sc = new ShellCommand("setfacl", "-m", "user:" + owner + ":rwx", dir.toString());
+			if (sc.getExitValue() != 0) {
+				throw new InternalException(sc.getMessage() + ". Check that user '" + owner + "' exists");
+			}
+			if (job.isWorkdir()) {
+				/*
+				 * Anything the job writes must remain readable and deletable by this service so
+				 * give it a default ACL as well as giving the owner access.
+				 */
+				Path work = Files.createDirectory(dir.resolve(WORKDIR));
+				String self = System.getProperty("user.name");
+				sc = new ShellCommand("setfacl", "-m", "user:" + owner + ":rwx,default:user:" + self + ":rwx",
+						work.toString());
+				if (sc.getExitValue() != 0) {
+					throw new InternalException(sc.getMessage());
+				}
+			}
+		} catch (IOException e) {
+			throw new InternalException("Unable to submit job via batch " + e.getClass() + " " + e.getMessage());
+		}
+
+		Path batchScriptFile = createScript(job.getParameters(), job.getExecutable(), dir, job.isWorkdir());
+
+		logger.debug("Writing to " + batchScriptFile.toString() + " to run as " + owner);
+		try (InputStream is = Files.newInputStream(batchScriptFile)) {
+			ShellCommand sc = new ShellCommand(Paths.get("/home/" + owner), is, "sudo", "-u", owner, "batch");
+			if (sc.getExitValue() != 0) {
+				throw new InternalException("Unable to submit job via batch " + sc.getMessage() + sc.getStdout());
+			}
+			String response = sc.getStderr();
+
+			// Some versions of the batch command send extra warnings to stderr;
+			// we can't assume that the job id is always the second word.
+
+			Pattern p = Pattern.compile(".*job (\\d+) .*", Pattern.DOTALL);
+			Matcher m = p.matcher(response);
+			if (m.matches()) {
+				job.setBatchId(m.group(1));
+				job.setBatchUsername(owner);
+			} else {
+				throw new InternalException("Unable to extract job id from batch output: " + response);
+			}
+		} catch (IOException e) {
+			throw new InternalException("Unable to submit job via batch " + e.getClass() + " " + e.getMessage());
+		}
+	}
+
+	private Path createScript(String parameters, String executable, Path dir, boolean workdir)
+			throws InternalException {
+		Path batchScriptFile = null;
+		try {
+			batchScriptFile = Files.createTempFile(null, null);
+		} catch (IOException e) {
+			throw new InternalException("Unable to create a temporary file: " + e.getMessage());
+		}
+
+		String of = dir.resolve("o").toString();
+		String ef = dir.resolve("e").toString();
+		try (BufferedWriter bw = Files.newBufferedWriter(batchScriptFile, Charset.defaultCharset())) {
+			writeln(bw, "#!/bin/sh");
+			if (workdir) {
+				writeln(bw, "cd " + dir.resolve(WORKDIR) + " || exit 1");
+			} else {
+				writeln(bw, "rm -rf *");
+			}
+			writeln(bw, "echo $(date) - " + executable + " starting > " + of + " 2> " + ef);
+			String line = executable + " " + parameters + " >> " + of + " 2>> " + ef;
+			writeln(bw, line);
+			writeln(bw, "rc=$?");
+			writeln(bw, "echo $rc > " + dir.resolve("rc"));
+			writeln(bw, "echo $(date) - " + executable + " ending with code $rc >> " + of + " 2>> " + ef);
+			if (!workdir) {
+				writeln(bw, "rm -rf *");
+			}
+		} catch (IOException e) {
+			throw new InternalException("Exception creating batch script: " + e.getMessage());
+		}
+		return batchScriptFile;
+	}
+
+	private void writeln(BufferedWriter bw, String string) throws IOException {
+		bw.write(string);
+		bw.newLine();
+		logger.debug("Script line: " + string);
+	}
+
+}
@@ -0,0 +1,290 @@
+package org.icatproject.ijp.unixbatch;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.icatproject.ijp.batch.exceptions.ParameterException;
+
+/**
+ * Scans a job output file for lines matching a pattern and then writes the matches as json
+ * directly to the response. The file is read through a single fixed size buffer, only the first
+ * MAX_LINE_LENGTH bytes of each line are searched and only the first MAX_RETURNED_LENGTH
+ * characters of those are kept. The text kept for the response is limited in total, so memory use
+ * depends upon neither the size of the file nor the number of matches requested.
+ */
+public class OutputSearcher implements StreamingOutput {
+
+	static class Line {
+		final long offset;
+		final String text;
+
+		private Line(long offset, String text) {
+			this.offset = offset;
+			this.text = text;
+		}
+	}
+
+	/*
+	 * Thrown from within the matcher when the search has run for too long
+	 */
+	private static class OverrunException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/*
+	 * Presents the text of a line to the matcher and checks the deadline as characters are read
+	 * so that a regular expression which backtracks catastrophically cannot run for ever.
+	 */
+	private class Text implements CharSequence {
+
+		private final String text;
+
+		private Text(String text) {
+			this.text = text;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if ((++steps & 0xfff) == 0 && System.nanoTime() > deadline) {
+				throw new OverrunException();
+			}
+			return text.charAt(index);
+		}
+
+		@Override
+		public int length() {
+			return text.length();
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return new Text(text.substring(start, end));
+		}
+
+		@Override
+		public String toString() {
+			return text;
+		}
+	}
+
+	static class Match {
+		final Line line;
+		final List<Line> before;
+		final List<Line> after = new ArrayList<>();
+
+		private Match(Line line, List<Line> before) {
+			this.line = line;
+			this.before = before;
+		}
+	}
+
+	private static final int BUFSIZ = 1024 * 1024;
+
+	/* Bytes of a line which are kept for matching; the rest are skipped */
+	static final int MAX_LINE_LENGTH = 64 * 1024;
+
+	/* Characters of a line which are returned */
+	static final int MAX_RETURNED_LENGTH = 4 * 1024;
+
+	private final Pattern pattern;
+	private final int context;
+	private final int maxMatches;
+	private final long maxSize;
+	private final int maxSeconds;
+
+	private final ArrayDeque<Line> previous = new ArrayDeque<>();
+	private final List<Match> matches = new ArrayList<>();
+	private final List<Match> open = new ArrayList<>();
+	private long size;
+	private long steps;
+	private long deadline;
+	private boolean truncated;
+
+	/**
+	 * @param pattern
+	 *            the pattern to look for anywhere in a line
+	 * @param context
+	 *            the number of lines to return before and after each matching line
+	 * @param maxMatches
+	 *            the number of matching lines to return
+	 * @param maxSize
+	 *            the total number of characters of text to return, counting a line each time it
+	 *            is returned
+	 * @param maxSeconds
+	 *            the time after which the search is abandoned
+	 */
+	public OutputSearcher(Pattern pattern, int context, int maxMatches, long maxSize, int maxSeconds) {
+		this.pattern = pattern;
+		this.context = context;
+		this.maxMatches = maxMatches;
+		this.maxSize = maxSize;
+		this.maxSeconds = maxSeconds;
+	}
+
+	/**
+	 * Scan the file, stopping once maxMatches matches and their context have been found or the
+	 * text to return reaches maxSize.
+	 *
+	 * @throws ParameterException
+	 *             if the search takes longer than maxSeconds
+	 */
+	public void scan(Path file) throws IOException, ParameterException {
+		deadline = System.nanoTime() + maxSeconds * 1000000000L;
+		try {
+			read(file);
+		} catch (OverrunException e) {
+			throw new ParameterException("Search abandoned after " + maxSeconds
+					+ " seconds; try a simpler pattern or a smaller maxMatches");
+		}
+	}
+
+	private void read(Path file) throws IOException {
+		Charset charset = Charset.defaultCharset();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFSIZ);
+			byte[] lineBytes = new byte[MAX_LINE_LENGTH];
+			int lineLength = 0;
+			long lineOffset = 0;
+			long position = 0;
+			boolean more = true;
+
+			while (more && channel.read(buffer) >= 0) {
+				buffer.flip();
+				while (more && buffer.hasRemaining()) {
+					byte b = buffer.get();
+					position++;
+					if (b == '\n') {
+						more = accept(lineOffset, new String(lineBytes, 0, lineLength, charset));
+						lineLength = 0;
+						lineOffset = position;
+					} else if (lineLength < MAX_LINE_LENGTH) {
+						lineBytes[lineLength++] = b;
+					}
+				}
+				buffer.clear();
+			}
+			if (more && position != lineOffset) {
+				more = accept(lineOffset, new String(lineBytes, 0, lineLength, charset));
+			}
+			if (!more && position < channel.size()) {
+				truncated = true;
+			}
+		}
+	}
+
+	/*
+	 * Returns false once no more lines are needed: either maxMatches matches have been found and
+	 * their context is complete or there is no room left for more text.
+	 */
+	private boolean accept(long offset, String text) {
+		Line line = new Line(offset, text.length() > MAX_RETURNED_LENGTH ? text.substring(0, MAX_RETURNED_LENGTH)
+				: text);
+
+		if (!open.isEmpty()) {
+			if (!reserve(line.text.length() * open.size())) {
+				return false;
+			}
+			Iterator<Match> iter = open.iterator();
+			while (iter.hasNext()) {
+				Match match = iter.next();
+				match.after.add(line);
+				if (match.after.size() == context) {
+					iter.remove();
+				}
+			}
+		}
+
+		if (matches.size() < maxMatches) {
+			if (pattern.matcher(new Text(text)).find()) {
+				long needed = line.text.length();
+				for (Line p : previous) {
+					needed += p.text.length();
+				}
+				if (!reserve(needed)) {
+					return false;
+				}
+				Match match = new Match(line, new ArrayList<>(previous));
+				matches.add(match);
+				if (context > 0) {
+					open.add(match);
+				}
+			}
+		} else if (!truncated && !open.isEmpty() && pattern.matcher(new Text(text)).find()) {
+			truncated = true;
+		}
+
+		if (context > 0) {
+			if (previous.size() == context) {
+				previous.removeFirst();
+			}
+			previous.addLast(line);
+		}
+
+		return matches.size() < maxMatches || !open.isEmpty();
+	}
+
+	/*
+	 * Account for text to be returned, marking the result as truncated if there is no room for it
+	 */
+	private boolean reserve(long needed) {
+		if (size + needed > maxSize) {
+			truncated = true;
+			return false;
+		}
+		size += needed;
+		return true;
+	}
+
+	List<Match> getMatches() {
+		return matches;
+	}
+
+	/*
+	 * True if more matching lines may exist than were returned
+	 */
+	boolean isTruncated() {
+		return truncated;
+	}
+
+	/**
+	 * Write the matches found by scan as json. Each match holds the byte offset of the start of
+	 * the line within the file, the line itself and the requested context lines.
+	 */
+	@Override
+	public void write(OutputStream output) throws IOException {
+		try (JsonGenerator gen = Json.createGenerator(output)) {
+			gen.writeStartObject().writeStartArray("matches");
+			for (Match match : matches) {
+				gen.writeStartObject();
+				gen.write("offset", match.line.offset).write("line", match.line.text);
+				writeLines(gen, "before", match.before);
+				writeLines(gen, "after", match.after);
+				gen.writeEnd();
+			}
+			gen.writeEnd().write("truncated", truncated).writeEnd();
+		}
+	}
+
+	private void writeLines(JsonGenerator gen, String name, List<Line> lines) {
+		gen.writeStartArray(name);
+		for (Line line : lines) {
+			gen.writeStartObject().write("offset", line.offset).write("line", line.text).writeEnd();
+		}
+		gen.writeEnd();
+	}
+
+}
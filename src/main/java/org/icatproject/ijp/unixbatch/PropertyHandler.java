@@ -0,0 +1,287 @@
+package org.icatproject.ijp.unixbatch;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.PostConstruct;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+
+import org.icatproject.utils.CheckedProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the configuration read from unixbatch.properties. It is loaded once at startup and the
+ * file is then checked periodically so that changes to the families can be picked up without a
+ * redeploy.
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class PropertyHandler {
+
+	/**
+	 * Immutable snapshot of the family definitions. A new one is built on each reload and swapped
+	 * in as a whole so that callers never see a partially updated set of families.
+	 */
+	public static class Families {
+
+		private final String defaultFamily;
+		private final Map<String, List<String>> members;
+
+		private Families(String defaultFamily, Map<String, List<String>> members) {
+			this.defaultFamily = defaultFamily;
+			this.members = Collections.unmodifiableMap(members);
+		}
+
+		public String getDefaultFamily() {
+			return defaultFamily;
+		}
+
+		/**
+		 * Return the pool accounts of the family or null if the family is not known
+		 */
+		public List<String> getMembers(String family) {
+			return members.get(family);
+		}
+
+		public Set<String> getAccounts() {
+			Set<String> accounts = new HashSet<>();
+			for (List<String> accountList : members.values()) {
+				accounts.addAll(accountList);
+			}
+			return accounts;
+		}
+
+	}
+
+	private final static Logger logger = LoggerFactory.getLogger(PropertyHandler.class);
+
+	private final Path propertiesFile = Paths.get(Constants.PROPERTIES_FILEPATH);
+
+	private volatile Families families;
+
+	private Path jobOutputDir;
+
+	private int maxSearchMatches = 1000;
+
+	private int maxSearchContext = 100;
+
+	private long maxSearchSize = 4 * 1024 * 1024;
+
+	private int maxSearchSeconds = 10;
+
+	private int dedupMinutes = 60;
+
+	private int maxJobsPerUser;
+	private int submissionsPerMinute;
+	private int submissionBurst;
+
+	private int maxReleases;
+
+	private FileTime lastModified;
+
+	@PostConstruct
+	void init() {
+		try {
+			lastModified = Files.getLastModifiedTime(propertiesFile);
+			CheckedProperties props = new CheckedProperties();
+			props.loadFromFile(Constants.PROPERTIES_FILEPATH);
+
+			families = readFamilies(props);
+
+			jobOutputDir = props.getPath("jobOutputDir");
+			if (!jobOutputDir.toFile().exists()) {
+				String msg = "jobOutputDir " + jobOutputDir + "does not exist";
+				logger.error(msg);
+				throw new IllegalStateException(msg);
+			}
+			jobOutputDir = jobOutputDir.toAbsolutePath();
+
+			if (props.has("maxSearchMatches")) {
+				maxSearchMatches = props.getPositiveInt("maxSearchMatches");
+			}
+			if (props.has("maxSearchContext")) {
+				maxSearchContext = props.getNonNegativeInt("maxSearchContext");
+			}
+			if (props.has("maxSearchSize")) {
+				maxSearchSize = props.getPositiveLong("maxSearchSize");
+			}
+			if (props.has("maxSearchSeconds")) {
+				maxSearchSeconds = props.getPositiveInt("maxSearchSeconds");
+			}
+
+			if (props.has("dedup.minutes")) {
+				dedupMinutes = props.getPositiveInt("dedup.minutes");
+			}
+
+			if (props.has("fairShare.maxJobs")) {
+				maxJobsPerUser = props.getPositiveInt("fairShare.maxJobs");
+				logger.info("Each user may have at most " + maxJobsPerUser + " jobs queued or executing in batch");
+			}
+			if (props.has("fairShare.perMinute")) {
+				submissionsPerMinute = props.getPositiveInt("fairShare.perMinute");
+				submissionBurst = props.has("fairShare.burst") ? props.getPositiveInt("fairShare.burst")
+						: submissionsPerMinute;
+				logger.info("Each user may pass " + submissionsPerMinute + " jobs per minute to batch with bursts of "
+						+ submissionBurst);
+			}
+			if (props.has("maxReleases")) {
+				maxReleases = props.getPositiveInt("maxReleases");
+			}
+
+			logger.info("Set up unixbatch with default family " + families.getDefaultFamily());
+		} catch (Exception e) {
+			String msg = e.getClass() + " reports " + e.getMessage();
+			logger.error(msg);
+			throw new IllegalStateException(msg);
+		}
+	}
+
+	private Families readFamilies(CheckedProperties props) throws Exception {
+		String defaultFamily = null;
+		Map<String, List<String>> members = new LinkedHashMap<>();
+		String familiesList = props.getString("families.list");
+		for (String mnemonic : familiesList.trim().split("\\s+")) {
+			if (mnemonic.isEmpty()) {
+				continue;
+			}
+			if (defaultFamily == null) {
+				defaultFamily = mnemonic;
+			}
+			String key = "families." + mnemonic;
+			String[] accounts = props.getString(key).trim().split("\\s+");
+			members.put(mnemonic, Collections.unmodifiableList(new ArrayList<>(Arrays.asList(accounts))));
+			logger.debug("Family " + mnemonic + " contains " + members.get(mnemonic));
+		}
+		if (defaultFamily == null) {
+			String msg = "No families defined";
+			logger.error(msg);
+			throw new IllegalStateException(msg);
+		}
+		return new Families(defaultFamily, members);
+	}
+
+	/**
+	 * Reload the families if the properties file has changed. If the new file cannot be parsed
+	 * the existing families are kept. Accounts that disappear are simply no longer chosen for new
+	 * jobs; jobs already running under them are still found via the batch username stored with
+	 * the job so status, cancel and delete continue to work while they drain.
+	 */
+	@Schedule(hour = "*", minute = "*", second = "*/15", persistent = false)
+	synchronized void checkForChanges() {
+		FileTime modified;
+		try {
+			modified = Files.getLastModifiedTime(propertiesFile);
+		} catch (IOException e) {
+			logger.error("Unable to check " + propertiesFile + " for changes " + e.getClass() + " " + e.getMessage());
+			return;
+		}
+		if (modified.equals(lastModified)) {
+			return;
+		}
+		lastModified = modified;
+
+		try {
+			CheckedProperties props = new CheckedProperties();
+			props.loadFromFile(Constants.PROPERTIES_FILEPATH);
+			Families newFamilies = readFamilies(props);
+			Path newJobOutputDir = props.getPath("jobOutputDir").toAbsolutePath();
+			if (!newJobOutputDir.equals(jobOutputDir)) {
+				logger.warn("Change of jobOutputDir to " + newJobOutputDir + " will only take effect after a restart");
+			}
+
+			Set<String> drained = families.getAccounts();
+			drained.removeAll(newFamilies.getAccounts());
+			families = newFamilies;
+			logger.info("Reloaded families from " + propertiesFile + " with default family "
+					+ newFamilies.getDefaultFamily());
+			if (!drained.isEmpty()) {
+				logger.info("Accounts " + drained + " will receive no new jobs");
+			}
+		} catch (Exception e) {
+			logger.error("Keeping existing families as unable to reload " + propertiesFile + " " + e.getClass()
+					+ " reports " + e.getMessage());
+		}
+	}
+
+	public Families getFamilies() {
+		return families;
+	}
+
+	public Path getJobOutputDir() {
+		return jobOutputDir;
+	}
+
+	public int getMaxSearchMatches() {
+		return maxSearchMatches;
+	}
+
+	public int getMaxSearchContext() {
+		return maxSearchContext;
+	}
+
+	/**
+	 * @return the number of characters of text that a search of job output may return
+	 */
+	public long getMaxSearchSize() {
+		return maxSearchSize;
+	}
+
+	/**
+	 * @return the time after which a search of job output is abandoned
+	 */
+	public int getMaxSearchSeconds() {
+		return maxSearchSeconds;
+	}
+
+	/**
+	 * @return how far back to look for an identical job when a submission asks for dedup
+	 */
+	public int getDedupMinutes() {
+		return dedupMinutes;
+	}
+
+	/**
+	 * @return the maximum number of jobs a user may have queued or executing in batch or 0 if
+	 *         there is no limit
+	 */
+	public int getMaxJobsPerUser() {
+		return maxJobsPerUser;
+	}
+
+	/**
+	 * @return the rate at which a user's jobs may be passed to batch or 0 if there is no limit
+	 */
+	public int getSubmissionsPerMinute() {
+		return submissionsPerMinute;
+	}
+
+	public int getSubmissionBurst() {
+		return submissionBurst;
+	}
+
+	/**
+	 * @return the maximum number of held jobs to release on each pass of the scheduler or 0 if
+	 *         there is no limit
+	 */
+	public int getMaxReleases() {
+		return maxReleases;
+	}
+
+}
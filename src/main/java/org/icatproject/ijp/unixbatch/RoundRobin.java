@@ -0,0 +1,71 @@
+package org.icatproject.ijp.unixbatch;
+
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Chooses which held jobs to release. Users take turns, in order of name, to have one job
+ * released. The turns carry on from one call to the next so that a user who is not reached
+ * because of the limit on releases is among the first to be served next time. It is not thread
+ * safe; callers must synchronize.
+ */
+public class RoundRobin {
+
+	/**
+	 * Decides whether a user may have another job released now
+	 */
+	public interface Gate {
+
+		/**
+		 * @return true if a job of the user may be released, in which case it will be
+		 */
+		boolean mayRelease(String userName);
+	}
+
+	private String lastServed;
+
+	/**
+	 * @param queues
+	 *            the held jobs of each user, oldest first. Jobs are removed as they are chosen.
+	 * @param gate
+	 *            consulted before each job is chosen. A user who is refused is passed over until
+	 *            the next call.
+	 * @param maxReleases
+	 *            the most jobs to choose or 0 for no limit
+	 * @return the chosen jobs in the order in which they should be released
+	 */
+	public <T> List<T> choose(Map<String, Deque<T>> queues, Gate gate, int maxReleases) {
+		TreeSet<String> sorted = new TreeSet<>(queues.keySet());
+		List<String> users = new ArrayList<>();
+		if (lastServed == null) {
+			users.addAll(sorted);
+		} else {
+			users.addAll(sorted.tailSet(lastServed, false));
+			users.addAll(sorted.headSet(lastServed, true));
+		}
+
+		List<T> chosen = new ArrayList<>();
+		while (!users.isEmpty()) {
+			Iterator<String> iter = users.iterator();
+			while (iter.hasNext()) {
+				if (maxReleases != 0 && chosen.size() == maxReleases) {
+					return chosen;
+				}
+				String userName = iter.next();
+				Deque<T> queue = queues.get(userName);
+				if (!queue.isEmpty() && gate.mayRelease(userName)) {
+					chosen.add(queue.removeFirst());
+					lastServed = userName;
+				} else {
+					iter.remove();
+				}
+			}
+		}
+		return chosen;
+	}
+
+}
@@ -0,0 +1,57 @@
+package org.icatproject.ijp.unixbatch;
+
+/**
+ * Simple token bucket used to limit the rate at which one user's jobs are passed to batch. It is
+ * not thread safe; callers must synchronize.
+ */
+public class TokenBucket {
+
+	private final double capacity;
+	private final double tokensPerNano;
+
+	private double tokens;
+	private long lastRefill;
+
+	/**
+	 * @param perMinute
+	 *            the rate at which tokens are added
+	 * @param burst
+	 *            the maximum number of tokens that can be held, which is also the number held
+	 *            initially
+	 */
+	public TokenBucket(int perMinute, int burst) {
+		capacity = burst;
+		tokensPerNano = perMinute / 60e9;
+		tokens = burst;
+		lastRefill = System.nanoTime();
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+		lastRefill = now;
+	}
+
+	/**
+	 * Take one token if one is available
+	 *
+	 * @return true if a token was taken
+	 */
+	public boolean tryTake() {
+		refill();
+		if (tokens >= 1) {
+			tokens -= 1;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if the bucket is full so that it need not be kept
+	 */
+	public boolean isFull() {
+		refill();
+		return tokens >= capacity;
+	}
+
+}
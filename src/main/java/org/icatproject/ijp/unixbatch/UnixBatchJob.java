@@ -5,23 +5,78 @@ import java.util.Date;
 
 import javax.persistence.Entity;
 import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Lob;
 import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
+import javax.persistence.Table;
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
 
 @SuppressWarnings("serial")
 @Entity
-@NamedQuery(name = "UnixBatchJob.ID_BY_USERNAME", query = "SELECT j.id FROM UnixBatchJob j WHERE j.username = :username")
+@Table(indexes = @Index(columnList = "dedupKey"))
+@NamedQueries({
+		@NamedQuery(name = "UnixBatchJob.ID_BY_USERNAME", query = "SELECT j.id FROM UnixBatchJob j WHERE j.username = :username"),
+		@NamedQuery(name = "UnixBatchJob.HELD", query = "SELECT j FROM UnixBatchJob j WHERE j.held = TRUE AND j.waiting = FALSE ORDER BY j.submitDate"),
+		@NamedQuery(name = "UnixBatchJob.DUPLICATE", query = "SELECT j FROM UnixBatchJob j WHERE j.dedupKey = :dedupKey AND j.username = :username AND j.submitDate > :since AND j.cancelled = FALSE AND (j.completed = FALSE OR j.exitCode = 0) ORDER BY j.submitDate DESC"),
+		@NamedQuery(name = "UnixBatchJob.WAITING", query = "SELECT j FROM UnixBatchJob j WHERE j.waiting = TRUE ORDER BY j.submitDate"),
+		@NamedQuery(name = "UnixBatchJob.WAITING_BY_USERNAME", query = "SELECT j FROM UnixBatchJob j WHERE j.waiting = TRUE AND j.username = :username"),
+		@NamedQuery(name = "UnixBatchJob.ACTIVE", query = "SELECT j FROM UnixBatchJob j WHERE (j.held IS NULL OR j.held = FALSE) AND j.cancelled = FALSE AND (j.completed IS NULL OR j.completed = FALSE)"),
+		@NamedQuery(name = "UnixBatchJob.COUNT_HELD_BY_USERNAME", query = "SELECT COUNT(j) FROM UnixBatchJob j WHERE j.username = :username AND j.held = TRUE AND j.waiting = FALSE"),
+		@NamedQuery(name = "UnixBatchJob.COUNT_ACTIVE_BY_USERNAME", query = "SELECT COUNT(j) FROM UnixBatchJob j WHERE j.username = :username AND (j.held IS NULL OR j.held = FALSE) AND j.cancelled = FALSE AND (j.completed IS NULL OR j.completed = FALSE)") })
 public class UnixBatchJob implements Serializable {
 
 	public static final String ID_BY_USERNAME = "UnixBatchJob.ID_BY_USERNAME";
+	public static final String HELD = "UnixBatchJob.HELD";
+	public static final String WAITING = "UnixBatchJob.WAITING";
+	public static final String WAITING_BY_USERNAME = "UnixBatchJob.WAITING_BY_USERNAME";
+	public static final String DUPLICATE = "UnixBatchJob.DUPLICATE";
+	public static final String ACTIVE = "UnixBatchJob.ACTIVE";
+	public static final String COUNT_HELD_BY_USERNAME = "UnixBatchJob.COUNT_HELD_BY_USERNAME";
+	public static final String COUNT_ACTIVE_BY_USERNAME = "UnixBatchJob.COUNT_ACTIVE_BY_USERNAME";
+
+	/* The id of the job in at. Jobs from before this was recorded use the id. */
+	private String batchId;
+
 	private String batchUsername;
 
 	private String directory;
 	private String executable;
 	private boolean cancelled;
 
+	/* Hash of what was submitted used to spot identical submissions */
+	private String dedupKey;
+
+	/* Run even if a parent fails rather than only after all parents succeed */
+	private boolean afterAny;
+
+	/* Set once the job is no longer known to at */
+	private boolean completed;
+
+	/* Exit code of the executable, if known, once completed */
+	private Integer exitCode;
+
+	private String family;
+
+	/*
+	 * Held by this service and not yet passed to batch. Columns added after the first release are
+	 * NULL for older jobs so queries must treat NULL as false.
+	 */
+	private boolean held;
+
+	@Lob
+	private String parameters;
+
+	/* Space separated ids of the jobs that must complete first */
+	@Lob
+	private String parents;
+
+	/* Held until the parents have completed */
+	private boolean waiting;
+
+	private boolean workdir;
+
 	@Id
 	private String id;
 
@@ -33,10 +88,18 @@ public class UnixBatchJob implements Serializable {
 	public UnixBatchJob() {
 	}
 
+	public String getBatchId() {
+		return batchId != null ? batchId : id;
+	}
+
 	public String getBatchUsername() {
 		return batchUsername;
 	}
 
+	public String getDedupKey() {
+		return dedupKey;
+	}
+
 	public String getDirectory() {
 		return directory;
 	}
@@ -45,6 +108,14 @@ public class UnixBatchJob implements Serializable {
 		return executable;
 	}
 
+	public Integer getExitCode() {
+		return exitCode;
+	}
+
+	public String getFamily() {
+		return family;
+	}
+
 	public String getId() {
 		return id;
 	}
@@ -53,14 +124,30 @@ public class UnixBatchJob implements Serializable {
 		return submitDate;
 	}
 
+	public String getParameters() {
+		return parameters;
+	}
+
+	public String getParents() {
+		return parents;
+	}
+
 	public String getUsername() {
 		return username;
 	}
 
+	public void setBatchId(String batchId) {
+		this.batchId = batchId;
+	}
+
 	public void setBatchUsername(String batchUsername) {
 		this.batchUsername = batchUsername;
 	}
 
+	public void setDedupKey(String dedupKey) {
+		this.dedupKey = dedupKey;
+	}
+
 	public void setDirectory(String directory) {
 		this.directory = directory;
 	}
@@ -69,10 +156,26 @@ public class UnixBatchJob implements Serializable {
 		this.executable = executable;
 	}
 
+	public void setExitCode(Integer exitCode) {
+		this.exitCode = exitCode;
+	}
+
+	public void setFamily(String family) {
+		this.family = family;
+	}
+
 	public void setId(String id) {
 		this.id = id;
 	}
 
+	public void setParameters(String parameters) {
+		this.parameters = parameters;
+	}
+
+	public void setParents(String parents) {
+		this.parents = parents;
+	}
+
 	public void setSubmitDate(Date submitDate) {
 		this.submitDate = submitDate;
 	}
@@ -89,4 +192,44 @@ public class UnixBatchJob implements Serializable {
 		this.cancelled = cancelled;
 	}
 
+	public boolean isAfterAny() {
+		return afterAny;
+	}
+
+	public void setAfterAny(boolean afterAny) {
+		this.afterAny = afterAny;
+	}
+
+	public boolean isCompleted() {
+		return completed;
+	}
+
+	public void setCompleted(boolean completed) {
+		this.completed = completed;
+	}
+
+	public boolean isHeld() {
+		return held;
+	}
+
+	public void setHeld(boolean held) {
+		this.held = held;
+	}
+
+	public boolean isWaiting() {
+		return waiting;
+	}
+
+	public void setWaiting(boolean waiting) {
+		this.waiting = waiting;
+	}
+
+	public boolean isWorkdir() {
+		return workdir;
+	}
+
+	public void setWorkdir(boolean workdir) {
+		this.workdir = workdir;
+	}
+
 }
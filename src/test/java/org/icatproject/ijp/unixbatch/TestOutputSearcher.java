@@ -0,0 +1,144 @@
+package org.icatproject.ijp.unixbatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.icatproject.ijp.batch.exceptions.ParameterException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestOutputSearcher {
+
+	private Path file;
+
+	@Before
+	public void before() throws IOException {
+		file = Files.createTempFile(null, null);
+	}
+
+	@After
+	public void after() throws IOException {
+		Files.delete(file);
+	}
+
+	private OutputSearcher scan(String contents, String text, int context, int maxMatches) throws Exception {
+		return scan(contents, text, context, maxMatches, Long.MAX_VALUE);
+	}
+
+	private OutputSearcher scan(String contents, String text, int context, int maxMatches, long maxSize)
+			throws Exception {
+		Files.write(file, contents.getBytes());
+		OutputSearcher searcher = new OutputSearcher(Pattern.compile(text, Pattern.LITERAL), context, maxMatches,
+				maxSize, 10);
+		searcher.scan(file);
+		return searcher;
+	}
+
+	private void checkLines(List<OutputSearcher.Line> lines, String... texts) {
+		assertEquals(texts.length, lines.size());
+		for (int i = 0; i < texts.length; i++) {
+			assertEquals(texts[i], lines.get(i).text);
+		}
+	}
+
+	@Test
+	public void offsets() throws Exception {
+		OutputSearcher searcher = scan("a\nerror one\nb\nerror two", "error", 0, 10);
+		List<OutputSearcher.Match> matches = searcher.getMatches();
+		assertEquals(2, matches.size());
+		assertEquals(2, matches.get(0).line.offset);
+		assertEquals("error one", matches.get(0).line.text);
+		assertEquals(14, matches.get(1).line.offset);
+		assertEquals("error two", matches.get(1).line.text);
+		assertFalse(searcher.isTruncated());
+	}
+
+	@Test
+	public void context() throws Exception {
+		OutputSearcher searcher = scan("1\n2\nx\n3\nx\n4\n5\n", "x", 2, 10);
+		List<OutputSearcher.Match> matches = searcher.getMatches();
+		assertEquals(2, matches.size());
+		checkLines(matches.get(0).before, "1", "2");
+		checkLines(matches.get(0).after, "3", "x");
+		checkLines(matches.get(1).before, "x", "3");
+		checkLines(matches.get(1).after, "4", "5");
+		assertFalse(searcher.isTruncated());
+	}
+
+	@Test
+	public void exactlyMaxMatches() throws Exception {
+		assertFalse(scan("x\ny\nx\n", "x", 0, 2).isTruncated());
+	}
+
+	@Test
+	public void stopsAfterMaxMatches() throws Exception {
+		OutputSearcher searcher = scan("x\ny\nx\ny\nz\n", "x", 1, 2);
+		assertEquals(2, searcher.getMatches().size());
+		checkLines(searcher.getMatches().get(1).after, "y");
+		assertTrue(searcher.isTruncated());
+	}
+
+	@Test
+	public void beyondMaxMatches() throws Exception {
+		OutputSearcher searcher = scan("x\ny\nx\ny\nx\n", "x", 0, 2);
+		assertEquals(2, searcher.getMatches().size());
+		assertTrue(searcher.isTruncated());
+	}
+
+	@Test
+	public void beyondMaxMatchesWithinContext() throws Exception {
+		OutputSearcher searcher = scan("x\nx\n", "x", 3, 1);
+		assertEquals(1, searcher.getMatches().size());
+		checkLines(searcher.getMatches().get(0).after, "x");
+		assertTrue(searcher.isTruncated());
+	}
+
+	@Test
+	public void longLine() throws Exception {
+		char[] filler = new char[OutputSearcher.MAX_LINE_LENGTH * 3];
+		Arrays.fill(filler, 'a');
+		String contents = new String(filler) + "\nerror\n";
+		OutputSearcher searcher = scan(contents, "error", 1, 10);
+		List<OutputSearcher.Match> matches = searcher.getMatches();
+		assertEquals(1, matches.size());
+		assertEquals(filler.length + 1, matches.get(0).line.offset);
+		assertEquals(OutputSearcher.MAX_RETURNED_LENGTH, matches.get(0).before.get(0).text.length());
+	}
+
+	@Test
+	public void matchBeyondReturnedText() throws Exception {
+		char[] filler = new char[OutputSearcher.MAX_RETURNED_LENGTH * 2];
+		Arrays.fill(filler, 'a');
+		OutputSearcher searcher = scan(new String(filler) + "error\n", "error", 0, 10);
+		assertEquals(1, searcher.getMatches().size());
+		assertEquals(OutputSearcher.MAX_RETURNED_LENGTH, searcher.getMatches().get(0).line.text.length());
+	}
+
+	@Test(expected = ParameterException.class)
+	public void catastrophicBacktracking() throws Exception {
+		char[] filler = new char[40];
+		Arrays.fill(filler, 'a');
+		Files.write(file, (new String(filler) + "\n").getBytes());
+		new OutputSearcher(Pattern.compile("(.*a){20}b"), 0, 10, Long.MAX_VALUE, 1).scan(file);
+	}
+
+	@Test
+	public void maxSize() throws Exception {
+		OutputSearcher searcher = scan("1\nx\n2\nx\n3\nx\n4\n", "x", 1, 10, 7);
+		List<OutputSearcher.Match> matches = searcher.getMatches();
+		assertEquals(2, matches.size());
+		checkLines(matches.get(1).before, "2");
+		checkLines(matches.get(1).after, "3");
+		assertTrue(searcher.isTruncated());
+	}
+
+}
@@ -0,0 +1,95 @@
+package org.icatproject.ijp.unixbatch;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TestRoundRobin {
+
+	private static class Always implements RoundRobin.Gate {
+		@Override
+		public boolean mayRelease(String userName) {
+			return true;
+		}
+	}
+
+	private Map<String, Deque<String>> queues(int users, int jobs) {
+		Map<String, Deque<String>> queues = new HashMap<>();
+		for (int u = 1; u <= users; u++) {
+			String userName = String.format("u%02d", u);
+			Deque<String> queue = new ArrayDeque<>();
+			for (int j = 1; j <= jobs; j++) {
+				queue.add(userName + "-" + j);
+			}
+			queues.put(userName, queue);
+		}
+		return queues;
+	}
+
+	@Test
+	public void oneEachInTurn() throws Exception {
+		List<String> chosen = new RoundRobin().choose(queues(3, 2), new Always(), 0);
+		assertEquals(Arrays.asList("u01-1", "u02-1", "u03-1", "u01-2", "u02-2", "u03-2"), chosen);
+	}
+
+	@Test
+	public void turnsCarryOver() throws Exception {
+		RoundRobin roundRobin = new RoundRobin();
+		Map<String, Deque<String>> queues = queues(25, 100);
+		List<String> first = roundRobin.choose(queues, new Always(), 20);
+		assertEquals("u01-1", first.get(0));
+		assertEquals("u20-1", first.get(19));
+
+		List<String> second = roundRobin.choose(queues, new Always(), 20);
+		assertEquals(Arrays.asList("u21-1", "u22-1", "u23-1", "u24-1", "u25-1", "u01-2"), second.subList(0, 6));
+		assertEquals("u15-2", second.get(19));
+	}
+
+	@Test
+	public void newUserWaitsForTurn() throws Exception {
+		RoundRobin roundRobin = new RoundRobin();
+		Map<String, Deque<String>> queues = queues(4, 10);
+		roundRobin.choose(queues, new Always(), 2);
+		queues.put("u00", new ArrayDeque<>(Arrays.asList("u00-1")));
+		assertEquals(Arrays.asList("u03-1", "u04-1", "u00-1", "u01-2"), roundRobin.choose(queues, new Always(), 4));
+	}
+
+	@Test
+	public void refusedUserPassedOver() throws Exception {
+		final Map<String, Integer> allowed = new HashMap<>();
+		allowed.put("u01", 1);
+		allowed.put("u02", 0);
+		allowed.put("u03", 3);
+		final List<String> refused = new ArrayList<>();
+		RoundRobin.Gate gate = new RoundRobin.Gate() {
+			@Override
+			public boolean mayRelease(String userName) {
+				int n = allowed.get(userName);
+				if (n == 0) {
+					refused.add(userName);
+					return false;
+				}
+				allowed.put(userName, n - 1);
+				return true;
+			}
+		};
+		List<String> chosen = new RoundRobin().choose(queues(3, 5), gate, 0);
+		assertEquals(Arrays.asList("u01-1", "u03-1", "u03-2", "u03-3"), chosen);
+		assertEquals(Arrays.asList("u02", "u01", "u03"), refused);
+	}
+
+	@Test
+	public void emptyQueues() throws Exception {
+		Map<String, Deque<String>> queues = queues(2, 0);
+		assertEquals(new ArrayList<String>(), new RoundRobin().choose(queues, new Always(), 0));
+	}
+
+}
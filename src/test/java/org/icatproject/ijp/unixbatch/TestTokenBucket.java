@@ -0,0 +1,30 @@
+package org.icatproject.ijp.unixbatch;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestTokenBucket {
+
+	@Test
+	public void burst() throws Exception {
+		TokenBucket bucket = new TokenBucket(1, 3);
+		assertTrue(bucket.isFull());
+		for (int i = 0; i < 3; i++) {
+			assertTrue(bucket.tryTake());
+		}
+		assertFalse(bucket.tryTake());
+		assertFalse(bucket.isFull());
+	}
+
+	@Test
+	public void refill() throws Exception {
+		TokenBucket bucket = new TokenBucket(60000, 1);
+		assertTrue(bucket.tryTake());
+		Thread.sleep(10);
+		assertTrue(bucket.isFull());
+		assertTrue(bucket.tryTake());
+	}
+
+}